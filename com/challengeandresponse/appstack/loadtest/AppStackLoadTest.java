@@ -0,0 +1,579 @@
+package com.challengeandresponse.appstack.loadtest;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+import com.challengeandresponse.appstack.AppStack;
+import com.challengeandresponse.appstack.AppStackDelimitedPath;
+import com.challengeandresponse.appstack.AppStackException;
+
+/**
+ * A standalone, multi-threaded load generator for AppStack trees.<br />
+ * Builds a synthetic tree (see AppStackLoadTree), then has a number of threads issue a weighted
+ * mix of get, get-with-argument, getAll ("*"), getParams ("?"), add and remove calls against it
+ * at a fixed, open-loop request rate, and reports throughput and latency percentiles.
+ *
+ * <p>Open loop means each request has an intended start time fixed in advance by the rate, and
+ * latency is measured from that intended time, not from when the thread got around to sending it.
+ * If the tree falls behind, the time requests spend waiting for their turn is counted, so the
+ * percentiles are corrected for coordinated omission. The uncorrected service time (from actual
+ * start to finish) is reported alongside for comparison. With rate=0 the threads run flat out,
+ * closed loop, and the two are the same. Threads spin for the last stretch before each request,
+ * so keep 'threads' below the number of cores or the generator itself adds to the latency.</p>
+ *
+ * <p>Arguments are key=value pairs, for example:<br />
+ * java com.challengeandresponse.appstack.loadtest.AppStackLoadTest threads=8 rate=20000 duration=30 depth=4 fanout=8 csv=runs.csv<br />
+ * Run with 'help' for the full list. Results are printed, and optionally appended to a CSV file
+ * (one row per run, so runs can be compared) and written to a JSON file.</p>
+ *
+ * @author jim
+ */
+public class AppStackLoadTest {
+
+	private static final int OP_GET = 0;
+	private static final int OP_GETARG = 1;
+	private static final int OP_GETALL = 2;
+	private static final int OP_GETPARAMS = 3;
+	private static final int OP_ADD = 4;
+	private static final int OP_REMOVE = 5;
+	private static final String[] OP_NAMES = { "get", "getarg", "getall", "getparams", "add", "remove" };
+
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	// how close to the intended start time a thread parks before it spins the rest of the way
+	private static final long SPIN_NANOS = 100000L;
+
+	// configuration, set from the command line
+	private String label = "";
+	private int threads = 4;
+	private double rate = 10000;
+	private int durationSeconds = 30;
+	private int warmupSeconds = 5;
+	private int depth = 3;
+	private int fanout = 10;
+	private double methodRatio = 0.5;
+	private long methodLatencyMicros = 0;
+	private String mix = "get:50,getarg:20,getall:5,getparams:5,add:10,remove:10";
+	private long seed = 1;
+	private String csvFile = null;
+	private String jsonFile = null;
+
+	private int[] mixWeights = new int[OP_NAMES.length];
+	private int mixTotal = 0;
+
+	// the tree under test and the flattened lists of targets in it
+	private AppStackLoadTree tree;
+	private Vector <String> leafPaths = new Vector <String> ();
+	private Vector <String> argPaths;
+
+	// results, merged from all workers
+	private LatencyHistogram corrected = new LatencyHistogram();
+	private LatencyHistogram service = new LatencyHistogram();
+	private LatencyHistogram[] correctedByOp = new LatencyHistogram[OP_NAMES.length];
+	private long[] errorsByOp = new long[OP_NAMES.length];
+	private long unsent = 0;
+	private double elapsedSeconds = 0;
+
+
+	/**
+	 * One load generating thread. It owns its histograms, its random number generator and its
+	 * list of labels waiting to be removed, so nothing is shared between threads but the tree.
+	 */
+	private class Worker implements Runnable {
+		private int id;
+		private long firstIntended;
+		private long intervalNanos;
+		private long measureStart;
+		private long end;
+		private long giveUp;
+		private Random random;
+
+		private LatencyHistogram[] corrected = new LatencyHistogram[OP_NAMES.length];
+		private LatencyHistogram[] service = new LatencyHistogram[OP_NAMES.length];
+		private long[] errors = new long[OP_NAMES.length];
+		private long unsent = 0;
+		private long lastDone = 0;
+
+		private LinkedList <AppStack> pendingNodes = new LinkedList <AppStack> ();
+		private LinkedList <String> pendingLabels = new LinkedList <String> ();
+		private long addSequence = 0;
+
+		Worker(int id, long firstIntended, long intervalNanos, long measureStart, long end, long giveUp) {
+			this.id = id;
+			this.firstIntended = firstIntended;
+			this.intervalNanos = intervalNanos;
+			this.measureStart = measureStart;
+			this.end = end;
+			this.giveUp = giveUp;
+			this.random = new Random(seed + 1 + id);
+			for (int i = 0; i < OP_NAMES.length; i++) {
+				corrected[i] = new LatencyHistogram();
+				service[i] = new LatencyHistogram();
+			}
+		}
+
+		public void run() {
+			long intended = firstIntended;
+			while (true) {
+				if (intervalNanos > 0) {
+					if (intended >= end)
+						break;
+					// too far behind to ever catch up - stop, and count what was never sent
+					if (System.nanoTime() > giveUp) {
+						unsent = (end - intended + intervalNanos - 1) / intervalNanos;
+						break;
+					}
+					waitUntil(intended);
+				}
+				else {
+					intended = System.nanoTime();
+					if (intended >= end)
+						break;
+				}
+
+				int op = pickOp(random);
+				long start = System.nanoTime();
+				boolean ok = execute(op);
+				long done = System.nanoTime();
+
+				if (intended >= measureStart) {
+					corrected[op].record(done - intended);
+					service[op].record(done - start);
+					if (! ok)
+						errors[op]++;
+					lastDone = done;
+				}
+				intended += intervalNanos;
+			}
+		}
+
+		/**
+		 * Perform one operation against the tree
+		 * @return true if it succeeded, false if AppStack threw
+		 */
+		private boolean execute(int op) {
+			try {
+				switch (op) {
+				case OP_GET:
+					tree.getRoot().get(new AppStackDelimitedPath(pick(leafPaths)));
+					break;
+				case OP_GETARG:
+					tree.getRoot().get(new AppStackDelimitedPath(pick(argPaths)), Integer.valueOf(random.nextInt()));
+					break;
+				case OP_GETALL:
+					tree.getRoot().get(new AppStackDelimitedPath(AppStackLoadTree.join(pick(tree.getInteriorPaths()), AppStack.getGetAllSymbol())));
+					break;
+				case OP_GETPARAMS:
+					tree.getRoot().get(new AppStackDelimitedPath(AppStackLoadTree.join(pick(tree.getInteriorPaths()), AppStack.getGetParamsSymbol())));
+					break;
+				case OP_ADD:
+					AppStack node = pick(tree.getInteriorNodes());
+					String addLabel = "lt"+id+"-"+(addSequence++);
+					node.add(addLabel, addLabel);
+					pendingNodes.add(node);
+					pendingLabels.add(addLabel);
+					break;
+				case OP_REMOVE:
+					// remove the oldest label this thread added, or a label that was never there
+					if (pendingNodes.isEmpty())
+						pick(tree.getInteriorNodes()).remove("lt"+id+"-none");
+					else
+						pendingNodes.removeFirst().remove(pendingLabels.removeFirst());
+					break;
+				}
+				return true;
+			}
+			catch (AppStackException ase) {
+				return false;
+			}
+		}
+
+		private <T> T pick(Vector <T> v) {
+			return v.get(random.nextInt(v.size()));
+		}
+	}
+
+
+	/**
+	 * Park until shortly before 'when', then spin the rest of the way, since parkNanos()
+	 * routinely oversleeps by tens of microseconds
+	 */
+	private static void waitUntil(long when) {
+		long remaining;
+		while ((remaining = when - System.nanoTime()) > 0) {
+			if (remaining > SPIN_NANOS)
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+		}
+	}
+
+	/**
+	 * Pick an operation at random, weighted by the mix
+	 */
+	private int pickOp(Random random) {
+		int r = random.nextInt(mixTotal);
+		for (int i = 0; i < mixWeights.length; i++) {
+			if (r < mixWeights[i])
+				return i;
+			r -= mixWeights[i];
+		}
+		return OP_GET;
+	}
+
+
+	/**
+	 * Parse key=value arguments into this test's configuration
+	 * @throws AppStackException if an argument is not recognized or its value is bad
+	 */
+	private void configure(String[] args)
+	throws AppStackException {
+		for (int i = 0; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 1)
+				throw new AppStackException("Arguments are key=value, got: "+args[i]);
+			String key = args[i].substring(0, eq);
+			String value = args[i].substring(eq + 1);
+			try {
+				if (key.equals("label"))
+					label = value;
+				else if (key.equals("threads"))
+					threads = Integer.parseInt(value);
+				else if (key.equals("rate"))
+					rate = Double.parseDouble(value);
+				else if (key.equals("duration"))
+					durationSeconds = Integer.parseInt(value);
+				else if (key.equals("warmup"))
+					warmupSeconds = Integer.parseInt(value);
+				else if (key.equals("depth"))
+					depth = Integer.parseInt(value);
+				else if (key.equals("fanout"))
+					fanout = Integer.parseInt(value);
+				else if (key.equals("methodRatio"))
+					methodRatio = Double.parseDouble(value);
+				else if (key.equals("methodLatencyMicros"))
+					methodLatencyMicros = Long.parseLong(value);
+				else if (key.equals("mix"))
+					mix = value;
+				else if (key.equals("seed"))
+					seed = Long.parseLong(value);
+				else if (key.equals("csv"))
+					csvFile = value;
+				else if (key.equals("json"))
+					jsonFile = value;
+				else
+					throw new AppStackException("Unknown argument: "+key);
+			}
+			catch (NumberFormatException nfe) {
+				throw new AppStackException("Bad number for "+key+": "+value);
+			}
+		}
+		if (threads < 1)
+			throw new AppStackException("threads must be 1 or more");
+		if (rate < 0)
+			throw new AppStackException("rate must be 0 (unthrottled) or more");
+		if ((durationSeconds < 1) || (warmupSeconds < 0))
+			throw new AppStackException("duration must be 1 or more, and warmup 0 or more");
+		if (methodLatencyMicros < 0)
+			throw new AppStackException("methodLatencyMicros must be 0 or more");
+		parseMix();
+	}
+
+	/**
+	 * Parse the mix, a comma-separated list of op:weight pairs, e.g. "get:80,getall:20".
+	 * Operations that are not listed get weight 0.
+	 */
+	private void parseMix()
+	throws AppStackException {
+		Arrays.fill(mixWeights, 0);
+		mixTotal = 0;
+		String[] parts = mix.split(",");
+		for (int i = 0; i < parts.length; i++) {
+			String[] kv = parts[i].trim().split(":");
+			if (kv.length != 2)
+				throw new AppStackException("mix entries are op:weight, got: "+parts[i]);
+			int op = Arrays.asList(OP_NAMES).indexOf(kv[0].trim());
+			if (op < 0)
+				throw new AppStackException("Unknown op in mix: "+kv[0]+". Ops are "+Arrays.asList(OP_NAMES));
+			try {
+				mixWeights[op] = Integer.parseInt(kv[1].trim());
+			}
+			catch (NumberFormatException nfe) {
+				throw new AppStackException("Bad weight in mix: "+parts[i]);
+			}
+			if (mixWeights[op] < 0)
+				throw new AppStackException("mix weights must be 0 or more: "+parts[i]);
+			mixTotal += mixWeights[op];
+		}
+		if (mixTotal == 0)
+			throw new AppStackException("mix must have at least one op with a weight above 0");
+	}
+
+
+	/**
+	 * Build the tree, run the workers and gather their results
+	 */
+	private void run()
+	throws AppStackException, InterruptedException {
+		tree = new AppStackLoadTree(depth, fanout, methodRatio, methodLatencyMicros * 1000L, new Random(seed));
+		leafPaths.addAll(tree.getMethodPaths());
+		leafPaths.addAll(tree.getValuePaths());
+		argPaths = tree.getMethodPaths().isEmpty() ? leafPaths : tree.getMethodPaths();
+
+		System.out.println("Tree: depth "+depth+", fanout "+fanout+": "+tree.getInteriorPaths().size()+" nodes, "
+				+tree.getMethodPaths().size()+" methods, "+tree.getValuePaths().size()+" values");
+		System.out.println("Load: "+threads+" threads, "+((rate > 0) ? (rate+" req/s open loop") : "unthrottled")
+				+", "+warmupSeconds+"s warmup + "+durationSeconds+"s measured, mix "+mix);
+
+		// each thread takes an equal share of the rate, staggered so their requests interleave evenly
+		long intervalNanos = (rate > 0) ? (long) (threads * 1e9 / rate) : 0;
+		if ((rate > 0) && (intervalNanos < 1))
+			throw new AppStackException("rate is too high to schedule: "+rate);
+		long start = System.nanoTime() + 100000000L;
+		long measureStart = start + warmupSeconds * 1000000000L;
+		long end = measureStart + durationSeconds * 1000000000L;
+		long giveUp = end + durationSeconds * 1000000000L;
+
+		Worker[] workers = new Worker[threads];
+		Thread[] running = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(i, start + (intervalNanos * i) / threads, intervalNanos, measureStart, end, giveUp);
+			running[i] = new Thread(workers[i], "AppStackLoadTest-"+i);
+			running[i].start();
+		}
+		long lastDone = measureStart;
+		for (int i = 0; i < threads; i++) {
+			running[i].join();
+			for (int op = 0; op < OP_NAMES.length; op++) {
+				if (correctedByOp[op] == null)
+					correctedByOp[op] = new LatencyHistogram();
+				correctedByOp[op].add(workers[i].corrected[op]);
+				corrected.add(workers[i].corrected[op]);
+				service.add(workers[i].service[op]);
+				errorsByOp[op] += workers[i].errors[op];
+			}
+			unsent += workers[i].unsent;
+			lastDone = Math.max(lastDone, workers[i].lastDone);
+		}
+		elapsedSeconds = (lastDone - measureStart) / 1e9;
+	}
+
+
+	private long totalErrors() {
+		long errors = 0;
+		for (int i = 0; i < errorsByOp.length; i++)
+			errors += errorsByOp[i];
+		return errors;
+	}
+
+	private double throughput() {
+		return (elapsedSeconds > 0) ? corrected.getCount() / elapsedSeconds : 0;
+	}
+
+	private static String micros(long nanos) {
+		return String.format(Locale.US, "%.1f", nanos / 1000.0);
+	}
+
+
+	/**
+	 * Print the results to stdout
+	 */
+	private void report() {
+		System.out.println();
+		System.out.println(String.format(Locale.US, "Completed %d requests in %.2fs: %.1f req/s, %d errors",
+				corrected.getCount(), elapsedSeconds, throughput(), totalErrors()));
+		if ((rate > 0) && (throughput() < rate * 0.95))
+			System.out.println("WARNING: throughput is below the target rate - the tree (or this machine) is saturated, and latency includes queueing");
+		if (unsent > 0)
+			System.out.println("WARNING: "+unsent+" scheduled requests were never sent - latencies above understate the real ones");
+		System.out.println();
+		System.out.println(String.format("%-22s %10s %10s %10s %10s %10s", "latency (us)", "p50", "p90", "p99", "p99.9", "max"));
+		System.out.println(percentileLine("corrected", corrected));
+		System.out.println(percentileLine("service (uncorrected)", service));
+		for (int op = 0; op < OP_NAMES.length; op++) {
+			if (correctedByOp[op].getCount() > 0)
+				System.out.println(percentileLine("  "+OP_NAMES[op]+" ("+correctedByOp[op].getCount()+")", correctedByOp[op]));
+		}
+	}
+
+	private static String percentileLine(String name, LatencyHistogram h) {
+		StringBuffer sb = new StringBuffer(String.format("%-22s", name));
+		for (int i = 0; i < PERCENTILES.length; i++)
+			sb.append(String.format(" %10s", micros(h.getValueAtPercentile(PERCENTILES[i]))));
+		sb.append(String.format(" %10s", micros(h.getMax())));
+		return sb.toString();
+	}
+
+
+	/**
+	 * Append one row for this run to the CSV file, writing the header first if the file is new
+	 */
+	private void writeCsv(String timestamp)
+	throws IOException {
+		File f = new File(csvFile);
+		boolean newFile = (! f.exists()) || (f.length() == 0);
+		PrintWriter pw = new PrintWriter(new FileWriter(f, true));
+		try {
+			if (newFile) {
+				StringBuffer header = new StringBuffer("timestamp,label,threads,target_rate,duration_s,depth,fanout,method_ratio,method_latency_us,mix,seed,requests,errors,unsent,throughput");
+				for (int i = 0; i < PERCENTILE_NAMES.length; i++)
+					header.append(",").append(PERCENTILE_NAMES[i]).append("_us");
+				header.append(",max_us");
+				for (int i = 0; i < PERCENTILE_NAMES.length; i++)
+					header.append(",service_").append(PERCENTILE_NAMES[i]).append("_us");
+				header.append(",service_max_us");
+				pw.println(header);
+			}
+			StringBuffer row = new StringBuffer();
+			row.append(timestamp).append(",").append(csvQuote(label))
+				.append(",").append(threads).append(",").append(rate).append(",").append(durationSeconds)
+				.append(",").append(depth).append(",").append(fanout).append(",").append(methodRatio)
+				.append(",").append(methodLatencyMicros).append(",").append(csvQuote(mix)).append(",").append(seed)
+				.append(",").append(corrected.getCount()).append(",").append(totalErrors()).append(",").append(unsent)
+				.append(",").append(String.format(Locale.US, "%.1f", throughput()));
+			for (int i = 0; i < PERCENTILES.length; i++)
+				row.append(",").append(micros(corrected.getValueAtPercentile(PERCENTILES[i])));
+			row.append(",").append(micros(corrected.getMax()));
+			for (int i = 0; i < PERCENTILES.length; i++)
+				row.append(",").append(micros(service.getValueAtPercentile(PERCENTILES[i])));
+			row.append(",").append(micros(service.getMax()));
+			pw.println(row);
+		}
+		finally {
+			pw.close();
+		}
+		if (pw.checkError())
+			throw new IOException("Error writing "+csvFile);
+	}
+
+	private static String csvQuote(String s) {
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+
+	/**
+	 * Write this run's configuration and results to the JSON file, replacing it
+	 */
+	private void writeJson(String timestamp)
+	throws IOException {
+		PrintWriter pw = new PrintWriter(new FileWriter(jsonFile));
+		try {
+			pw.println("{");
+			pw.println("  \"timestamp\": "+jsonQuote(timestamp)+",");
+			pw.println("  \"label\": "+jsonQuote(label)+",");
+			pw.println("  \"config\": {");
+			pw.println("    \"threads\": "+threads+",");
+			pw.println("    \"targetRate\": "+rate+",");
+			pw.println("    \"durationSeconds\": "+durationSeconds+",");
+			pw.println("    \"warmupSeconds\": "+warmupSeconds+",");
+			pw.println("    \"depth\": "+depth+",");
+			pw.println("    \"fanout\": "+fanout+",");
+			pw.println("    \"methodRatio\": "+methodRatio+",");
+			pw.println("    \"methodLatencyMicros\": "+methodLatencyMicros+",");
+			pw.println("    \"mix\": "+jsonQuote(mix)+",");
+			pw.println("    \"seed\": "+seed);
+			pw.println("  },");
+			pw.println("  \"requests\": "+corrected.getCount()+",");
+			pw.println("  \"errors\": "+totalErrors()+",");
+			pw.println("  \"unsent\": "+unsent+",");
+			pw.println("  \"elapsedSeconds\": "+String.format(Locale.US, "%.3f", elapsedSeconds)+",");
+			pw.println("  \"throughput\": "+String.format(Locale.US, "%.1f", throughput())+",");
+			pw.println("  \"latencyMicros\": "+jsonPercentiles(corrected)+",");
+			pw.println("  \"serviceMicros\": "+jsonPercentiles(service)+",");
+			pw.println("  \"ops\": {");
+			for (int op = 0; op < OP_NAMES.length; op++) {
+				pw.print("    "+jsonQuote(OP_NAMES[op])+": { \"requests\": "+correctedByOp[op].getCount()
+						+", \"errors\": "+errorsByOp[op]+", \"latencyMicros\": "+jsonPercentiles(correctedByOp[op])+" }");
+				pw.println((op < OP_NAMES.length - 1) ? "," : "");
+			}
+			pw.println("  }");
+			pw.println("}");
+		}
+		finally {
+			pw.close();
+		}
+		if (pw.checkError())
+			throw new IOException("Error writing "+jsonFile);
+	}
+
+	private static String jsonPercentiles(LatencyHistogram h) {
+		StringBuffer sb = new StringBuffer("{ ");
+		for (int i = 0; i < PERCENTILES.length; i++)
+			sb.append("\"").append(PERCENTILE_NAMES[i]).append("\": ").append(micros(h.getValueAtPercentile(PERCENTILES[i]))).append(", ");
+		sb.append("\"max\": ").append(micros(h.getMax()));
+		sb.append(", \"mean\": ").append(String.format(Locale.US, "%.1f", h.getMean() / 1000.0));
+		sb.append(" }");
+		return sb.toString();
+	}
+
+	private static String jsonQuote(String s) {
+		StringBuffer sb = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '"') || (c == '\\'))
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append("\"").toString();
+	}
+
+
+	private static void usage() {
+		System.out.println("Usage: java "+AppStackLoadTest.class.getName()+" [key=value ...]");
+		System.out.println("  label=name                a name for this run, recorded in the CSV and JSON output");
+		System.out.println("  threads=4                 load generating threads");
+		System.out.println("  rate=10000                total requests per second, open loop. 0 runs unthrottled (closed loop)");
+		System.out.println("  duration=30               measured seconds");
+		System.out.println("  warmup=5                  seconds of load before measuring starts");
+		System.out.println("  depth=3                   levels of interior AppStacks");
+		System.out.println("  fanout=10                 children per interior AppStack");
+		System.out.println("  methodRatio=0.5           fraction of leaves that are methods rather than values");
+		System.out.println("  methodLatencyMicros=0     simulated time taken by each method call");
+		System.out.println("  mix=get:50,getarg:20,getall:5,getparams:5,add:10,remove:10");
+		System.out.println("                            weighted operation mix. Ops: "+Arrays.asList(OP_NAMES));
+		System.out.println("  seed=1                    random seed for the tree shape and request sequence");
+		System.out.println("  csv=file                  append a row of results to this CSV file");
+		System.out.println("  json=file                 write the results to this JSON file");
+	}
+
+
+	public static void main(String[] args) {
+		if ((args.length > 0) && (args[0].equals("help") || args[0].equals("-h") || args[0].equals("--help"))) {
+			usage();
+			return;
+		}
+		AppStackLoadTest lt = new AppStackLoadTest();
+		try {
+			lt.configure(args);
+		}
+		catch (AppStackException ase) {
+			System.out.println(ase.getMessage());
+			usage();
+			System.exit(1);
+		}
+		try {
+			lt.run();
+			lt.report();
+			SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+			String timestamp = sdf.format(new Date());
+			if (lt.csvFile != null) {
+				lt.writeCsv(timestamp);
+				System.out.println("Results appended to "+lt.csvFile);
+			}
+			if (lt.jsonFile != null) {
+				lt.writeJson(timestamp);
+				System.out.println("Results written to "+lt.jsonFile);
+			}
+		}
+		catch (Exception e) {
+			System.out.println("Exception: "+e.getMessage());
+			System.exit(1);
+		}
+	}
+
+}
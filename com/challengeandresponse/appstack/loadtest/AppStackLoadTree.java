@@ -0,0 +1,155 @@
+package com.challengeandresponse.appstack.loadtest;
+
+import java.util.*;
+
+import com.challengeandresponse.appstack.AppStack;
+import com.challengeandresponse.appstack.AppStackException;
+import com.challengeandresponse.appstack.AppStackPathI;
+
+/**
+ * Builds a synthetic AppStack tree for load testing, and remembers the paths into it
+ * so that the load generator can pick targets at random.
+ *
+ * <p>The tree has 'depth' levels of interior AppStacks, each with 'fanout' children labelled
+ * n0, n1, ... Every node at the bottom level has 'fanout' leaves. A leaf is either a registered
+ * method (labelled m0, m1, ...) or a plain String value (labelled v0, v1, ...), chosen at random
+ * with probability 'methodRatio' of being a method. Methods burn 'methodLatencyNanos' before
+ * returning, to simulate real work behind the AppStack.</p>
+ *
+ * <p>Paths are stored as Strings, not AppStackPathI objects, because get() consumes the path.</p>
+ *
+ * @author jim
+ */
+public class AppStackLoadTree {
+
+	private Node root;
+	private Vector <String> interiorPaths = new Vector <String> ();
+	private Vector <Node> interiorNodes = new Vector <Node> ();
+	private Vector <String> methodPaths = new Vector <String> ();
+	private Vector <String> valuePaths = new Vector <String> ();
+
+
+	/**
+	 * An interior node of the synthetic tree. It is an AppStack in its own right, and its
+	 * one callable method, work(), is registered under each method leaf label.
+	 */
+	public static class Node extends AppStack {
+		private long latencyNanos;
+
+		public Node(long latencyNanos) {
+			super();
+			this.latencyNanos = latencyNanos;
+		}
+
+		/**
+		 * The simulated method. Spins for short latencies (sleep granularity is far too coarse
+		 * below a millisecond), sleeps for longer ones.
+		 * @return a short String built from the remaining path and the argument object, so the call is not optimized away
+		 */
+		public String work(AppStackPathI aspi, Object o)
+		throws AppStackException {
+			if (latencyNanos >= 1000000L) {
+				try {
+					Thread.sleep(latencyNanos / 1000000L, (int) (latencyNanos % 1000000L));
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new AppStackException("Interrupted in work()");
+				}
+			}
+			else if (latencyNanos > 0) {
+				long until = System.nanoTime() + latencyNanos;
+				while (System.nanoTime() < until)
+					;
+			}
+			return "work:"+aspi.toString()+":"+o;
+		}
+	}
+
+
+	/**
+	 * Build a new synthetic tree
+	 * @param depth the number of levels of interior nodes, 1 or more (1 means the root holds the leaves)
+	 * @param fanout the number of children of each interior node, 1 or more
+	 * @param methodRatio the chance, 0.0 through 1.0, that a leaf is a method rather than a value
+	 * @param methodLatencyNanos how long each method call takes, in nanoseconds
+	 * @param random the source of randomness for leaf types, so that trees are reproducible from a seed
+	 * @throws AppStackException if the parameters are out of range, or the tree could not be built
+	 */
+	public AppStackLoadTree(int depth, int fanout, double methodRatio, long methodLatencyNanos, Random random)
+	throws AppStackException {
+		if (depth < 1)
+			throw new AppStackException("depth must be 1 or more, was "+depth);
+		if (fanout < 1)
+			throw new AppStackException("fanout must be 1 or more, was "+fanout);
+		if ((methodRatio < 0.0) || (methodRatio > 1.0))
+			throw new AppStackException("methodRatio must be between 0.0 and 1.0, was "+methodRatio);
+		root = new Node(methodLatencyNanos);
+		populate(root, "", 1, depth, fanout, methodRatio, methodLatencyNanos, random);
+	}
+
+	private void populate(Node node, String path, int level, int depth, int fanout, double methodRatio, long latencyNanos, Random random)
+	throws AppStackException {
+		interiorPaths.add(path);
+		interiorNodes.add(node);
+		for (int i = 0; i < fanout; i++) {
+			if (level < depth) {
+				Node child = new Node(latencyNanos);
+				node.add("n"+i, child);
+				populate(child, join(path, "n"+i), level + 1, depth, fanout, methodRatio, latencyNanos, random);
+			}
+			else if (random.nextDouble() < methodRatio) {
+				node.addMethod("m"+i, "work");
+				methodPaths.add(join(path, "m"+i));
+			}
+			else {
+				node.add("v"+i, "value-"+i);
+				valuePaths.add(join(path, "v"+i));
+			}
+		}
+	}
+
+	/**
+	 * Join a path and one more element. The root's path is the empty string.
+	 */
+	public static String join(String path, String element) {
+		return (path.length() == 0) ? element : path + "/" + element;
+	}
+
+
+	/**
+	 * @return the root of the tree, where every path starts
+	 */
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the paths of all interior nodes, in the same order as getInteriorNodes(). The root is ""
+	 */
+	public Vector <String> getInteriorPaths() {
+		return interiorPaths;
+	}
+
+	/**
+	 * @return all interior nodes, in the same order as getInteriorPaths()
+	 */
+	public Vector <Node> getInteriorNodes() {
+		return interiorNodes;
+	}
+
+	/**
+	 * @return the paths of all method leaves
+	 */
+	public Vector <String> getMethodPaths() {
+		return methodPaths;
+	}
+
+	/**
+	 * @return the paths of all value leaves
+	 */
+	public Vector <String> getValuePaths() {
+		return valuePaths;
+	}
+
+}
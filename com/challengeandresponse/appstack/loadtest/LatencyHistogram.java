@@ -0,0 +1,174 @@
+package com.challengeandresponse.appstack.loadtest;
+
+/**
+ * A fixed-size, log-linear histogram of latency values (in nanoseconds).<br />
+ * Values are grouped into power-of-two ranges, and each range is split into SUB_BUCKET_HALF
+ * linear sub-buckets, so any recorded value is reported to within about 0.8% of its true value,
+ * from 1ns up to Long.MAX_VALUE, in a few thousand counters.
+ *
+ * <p>A histogram is NOT thread safe. Each load generator thread records into its own
+ * histograms, and they are merged with add() after the threads have stopped.</p>
+ *
+ * @author jim
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 8;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+	// values below SUB_BUCKET_COUNT are counted exactly, then one half-range of buckets per additional bit
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+	private long[] counts = new long[BUCKET_COUNT];
+	private long totalCount = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+	private double sum = 0;
+
+
+	/**
+	 * Record one value. Negative values are recorded as zero.
+	 * @param value the value to record, in nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[indexFor(value)]++;
+		totalCount++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Add all the values recorded in another histogram into this one
+	 * @param other the histogram to merge into this one. It is not changed.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			counts[i] += other.counts[i];
+		totalCount += other.totalCount;
+		sum += other.sum;
+		if (other.min < min)
+			min = other.min;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return totalCount;
+	}
+
+	/**
+	 * @return the smallest value recorded, or 0 if nothing has been recorded
+	 */
+	public long getMin() {
+		return (totalCount == 0) ? 0 : min;
+	}
+
+	/**
+	 * @return the largest value recorded, or 0 if nothing has been recorded
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the mean of all recorded values, or 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		return (totalCount == 0) ? 0 : sum / totalCount;
+	}
+
+	/**
+	 * Return the value at the given percentile. As with any bucketed histogram, the value returned
+	 * is the upper bound of the bucket the percentile falls in (but never more than getMax())
+	 * @param percentile the percentile to look up, 0.0 through 100.0
+	 * @return the value at 'percentile', or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0)
+			return 0;
+		double p = Math.min(Math.max(percentile, 0.0), 100.0);
+		long target = (long) Math.ceil((p / 100.0) * totalCount);
+		if (target < 1)
+			target = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(highestValueFor(i), max);
+		}
+		return max;
+	}
+
+
+	/**
+	 * Map a value to its bucket. Values below SUB_BUCKET_COUNT get a bucket each. Above that,
+	 * the value is shifted right until it lies in [SUB_BUCKET_HALF, SUB_BUCKET_COUNT), and the
+	 * shift picks the range while the shifted value picks the sub-bucket within it.
+	 */
+	private static int indexFor(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >>> shift) - SUB_BUCKET_HALF);
+	}
+
+	/**
+	 * @return the largest value that maps to bucket 'index'
+	 */
+	private static long highestValueFor(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int shift = ((index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF) + 1;
+		long sub = ((index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF) + SUB_BUCKET_HALF;
+		// for the very last bucket this wraps from Long.MIN_VALUE to exactly Long.MAX_VALUE
+		return ((sub + 1) << shift) - 1;
+	}
+
+
+	// for testing
+	public static void main(String[] args) {
+		System.out.println("TEST 1 exact small values BEGIN");
+		LatencyHistogram h1 = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++)
+			h1.record(i);
+		if (h1.getValueAtPercentile(50.0) != 50)
+			System.out.println("Error1 - p50 expected 50, got "+h1.getValueAtPercentile(50.0));
+		if (h1.getValueAtPercentile(99.0) != 99)
+			System.out.println("Error1 - p99 expected 99, got "+h1.getValueAtPercentile(99.0));
+		if (h1.getValueAtPercentile(100.0) != 100)
+			System.out.println("Error1 - p100 expected 100, got "+h1.getValueAtPercentile(100.0));
+		System.out.println("TEST 1 exact small values END");
+
+		System.out.println("TEST 2 large values within 1% BEGIN");
+		LatencyHistogram h2 = new LatencyHistogram();
+		for (long v = 1000; v <= 1000000; v += 1000)
+			h2.record(v * 1000);
+		long p999 = h2.getValueAtPercentile(99.9);
+		if (Math.abs(p999 - 999000000L) > 999000000L / 100)
+			System.out.println("Error2 - p99.9 expected about 999000000, got "+p999);
+		if (h2.getValueAtPercentile(100.0) != 1000000000L)
+			System.out.println("Error2 - p100 expected exactly the max, got "+h2.getValueAtPercentile(100.0));
+		System.out.println("TEST 2 large values within 1% END");
+
+		System.out.println("TEST 3 merge BEGIN");
+		LatencyHistogram h3 = new LatencyHistogram();
+		h3.add(h1);
+		h3.add(h2);
+		if (h3.getCount() != h1.getCount() + h2.getCount())
+			System.out.println("Error3 - merged count expected "+(h1.getCount() + h2.getCount())+", got "+h3.getCount());
+		if ((h3.getMin() != 1) || (h3.getMax() != 1000000000L))
+			System.out.println("Error3 - merged min/max wrong: "+h3.getMin()+"/"+h3.getMax());
+		if (indexFor(Long.MAX_VALUE) != BUCKET_COUNT - 1)
+			System.out.println("Error3 - Long.MAX_VALUE does not land in the last bucket");
+		System.out.println("TEST 3 merge END");
+	}
+
+}